@@ -0,0 +1,137 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many datagrams the server has to handle per byte it delivers,
+ * with ACK coalescing disabled (an ACK for every packet) and enabled. Each setting is run
+ * on a small lossless file and on a large file with Gremlin dropping packets.
+ * Bytes delivered only count files the clients reassembled without error.
+ * Usage: java AckBenchmark [CLIENTS] [DROPCHANCE]
+ *
+ * @author GROUP 10 - Joseph Schultz (jjs0021), Cameron Schaerfl (crs0051), Erich Wu (ejw0013)
+ * @version 4-17-2017
+ */
+
+public class AckBenchmark {
+
+    private static final String HOST = "localhost";
+    private static final String SMALL_FILE = "bacon.html";
+    private static final String LARGE_FILE = "benchmark-large.html";
+    private static final String INDEX_DIRECTORY = "benchmark-index";
+    private static final long LARGE_FILE_SIZE = 10 * 1024 * 1024;
+    private static final int DEFAULT_CLIENTS = 3;
+    private static final double DEFAULT_DROP = 0.02;
+    private static final int[] ACK_EVERY = {1, 2, 8, 32};
+    private static final int SETTLE_TIME = 200; //ms to let the server drain the final ACKs
+
+    private Server server;
+    private int port;
+    private PrintStream console;
+
+    /**
+     * Run one round of concurrent clients per file and ACK_EVERY value and print the server side cost
+     *
+     * @param args optional number of concurrent clients and drop chance used on the large file
+     */
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CLIENTS;
+        double drop = args.length > 1 ? Double.parseDouble(args[1]) : DEFAULT_DROP;
+        new AckBenchmark().run(clients, drop);
+    }
+
+    private void run(int clients, double drop) throws Exception {
+        DatagramSocket probe = new DatagramSocket(0);
+        port = probe.getLocalPort();
+        probe.close();
+        File largeFile = createLargeFile();
+
+        console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+        server = new Server(port, HOST, INDEX_DIRECTORY);
+        Thread listener = new Thread(server::listen);
+        listener.setDaemon(true);
+        listener.start();
+
+        console.println("Datagrams received by the server (sent by the clients) per KB delivered");
+        console.println("file                 | drop | ack every |     ACKs handled (sent) |    NAKs handled (sent) | total datagrams | bytes delivered | datagrams per KB");
+        for (int ackEvery : ACK_EVERY) {
+            runRound(SMALL_FILE, clients, 0, ackEvery);
+        }
+        for (int ackEvery : ACK_EVERY) {
+            runRound(LARGE_FILE, clients, drop, ackEvery);
+        }
+        System.setOut(console);
+        largeFile.delete();
+        File indexDirectory = new File(INDEX_DIRECTORY);
+        for (File index : indexDirectory.listFiles()) {
+            index.delete();
+        }
+        indexDirectory.delete();
+    }
+
+    /**
+     * Build a file of about LARGE_FILE_SIZE bytes by repeating SMALL_FILE
+     */
+    private static File createLargeFile() throws IOException {
+        byte[] chunk = Files.readAllBytes(new File(SMALL_FILE).toPath());
+        File file = new File(LARGE_FILE);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (long written = 0; written < LARGE_FILE_SIZE; written += chunk.length) {
+                out.write(chunk);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Run a number of clients against the server at once and print what the server handled
+     */
+    private void runRound(String requestFile, int clients, double drop, int ackEvery) throws Exception {
+        long packetsBefore = server.getPacketsHandled();
+        long acksBefore = server.getAcksHandled();
+        long naksBefore = server.getNaksHandled();
+        byte[] expected = Files.readAllBytes(new File(requestFile).toPath());
+        AtomicLong delivered = new AtomicLong();
+        AtomicLong acksSent = new AtomicLong();
+        AtomicLong naksSent = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            final File outFile = new File("benchmark" + i + ".html");
+            Thread thread = new Thread(() -> {
+                Client client = new Client(port, HOST, 0, drop, 0, 0, requestFile, outFile.getPath(), ackEvery);
+                client.get();
+                acksSent.addAndGet(client.getAcksSent());
+                naksSent.addAndGet(client.getNaksSent());
+                try {
+                    if (Arrays.equals(expected, Files.readAllBytes(outFile.toPath()))) {
+                        delivered.addAndGet(expected.length);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                outFile.delete();
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Thread.sleep(SETTLE_TIME);
+        long packets = server.getPacketsHandled() - packetsBefore;
+        long bytes = delivered.get();
+        console.println(String.format("%-20s | %4.2f | %9d | %12d (%8d) | %11d (%8d) | %15d | %15d | %16.3f",
+                requestFile, drop, ackEvery,
+                server.getAcksHandled() - acksBefore, acksSent.get(),
+                server.getNaksHandled() - naksBefore, naksSent.get(),
+                packets, bytes, bytes == 0 ? 0.0 : packets * 1024.0 / bytes));
+    }
+}
@@ -0,0 +1,203 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Memory mapped sidecar index holding the checksum and strong hash of every chunk of a served file,
+ * stored in the server's index directory so a restarted server does not have to hash the file again.
+ * The sidecar is named after the SHA-1 of the canonical path of the file, so a requested path never
+ * decides where the server writes.
+ * The index is only trusted while the size and modification time of the file match its header.
+ * A stale or partial index is (re)built in a background thread one chunk at a time, chunks that are
+ * not built yet are simply not available and must be checksummed by the caller.
+ * <p>
+ * |       |            |           |       |              |                      |
+ * | MAGIC | CHUNK SIZE | FILE SIZE | MTIME | BUILT CHUNKS | CHECKSUM | HASH | ... |
+ * |_______|____________|___________|_______|______________|______________________|
+ * HEADER_SIZE                                               ENTRY_SIZE per chunk
+ *
+ * @author GROUP 10 - Joseph Schultz (jjs0021), Cameron Schaerfl (crs0051), Erich Wu (ejw0013)
+ * @version 4-17-2017
+ */
+
+public class ChunkIndex {
+
+    private static final int MAGIC = 0x43494458; //CIDX
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CHUNK_SIZE_OFFSET = 4;
+    private static final int FILE_SIZE_OFFSET = 8;
+    private static final int MTIME_OFFSET = 16;
+    private static final int BUILT_OFFSET = 24;
+    private static final int HEADER_SIZE = 28;
+    private static final String HASH_ALGORITHM = "SHA-1";
+    private static final int CHECKSUM_SIZE = 2;
+    private static final int HASH_SIZE = 20;
+    private static final int ENTRY_SIZE = CHECKSUM_SIZE + HASH_SIZE;
+    static final String SUFFIX = ".idx";
+    private static final int BATCH_CHUNKS = 2048; //chunks hashed between checks of the file
+
+    private File file;
+    private long fileSize;
+    private long mtime;
+    private int chunkSize;
+    private int chunkCount;
+    private MappedByteBuffer map;
+    private volatile int builtChunks;
+    private boolean closed = false;
+
+    private ChunkIndex(File file, long fileSize, long mtime, int chunkSize, MappedByteBuffer map) {
+        this.file = file;
+        this.fileSize = fileSize;
+        this.mtime = mtime;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+        this.map = map;
+    }
+
+    /**
+     * Map the index of a file, starting a background build if it is missing, stale or partial
+     *
+     * @param file      the served file
+     * @param directory the directory holding the index files of the server
+     * @param chunkSize the number of file bytes covered by a single entry
+     * @return the index, or null if the index file can not be created
+     */
+    public static ChunkIndex open(File file, File directory, int chunkSize) {
+        long fileSize = file.length();
+        long mtime = file.lastModified();
+        long chunkCount = (fileSize + chunkSize - 1) / chunkSize;
+        if (HEADER_SIZE + chunkCount * ENTRY_SIZE > Integer.MAX_VALUE) {
+            System.out.println(String.format("%s is too large to index in one mapping - checksumming on the fly", file));
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile(file, directory), "rw")) {
+            raf.setLength(HEADER_SIZE + chunkCount * ENTRY_SIZE);
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            ChunkIndex index = new ChunkIndex(file, fileSize, mtime, chunkSize, map);
+            if (map.getInt(MAGIC_OFFSET) == MAGIC && map.getInt(CHUNK_SIZE_OFFSET) == chunkSize
+                    && map.getLong(FILE_SIZE_OFFSET) == fileSize && map.getLong(MTIME_OFFSET) == mtime) {
+                index.builtChunks = Math.min(map.getInt(BUILT_OFFSET), index.chunkCount);
+            } else {
+                System.out.println(String.format("Chunk index of %s is missing or stale - rebuilding", file));
+                map.putInt(BUILT_OFFSET, 0);
+                map.putInt(MAGIC_OFFSET, MAGIC);
+                map.putInt(CHUNK_SIZE_OFFSET, chunkSize);
+                map.putLong(FILE_SIZE_OFFSET, fileSize);
+                map.putLong(MTIME_OFFSET, mtime);
+            }
+            if (index.builtChunks < index.chunkCount) {
+                Thread builder = new Thread(index::build);
+                builder.setDaemon(true);
+                builder.start();
+            }
+            return index;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            System.out.println(String.format("Could not map chunk index of %s - checksumming on the fly", file));
+            return null;
+        }
+    }
+
+    /**
+     * @param file      the served file
+     * @param directory the directory holding the index files of the server
+     * @return the index file of the served file
+     */
+    private static File indexFile(File file, File directory) throws IOException, NoSuchAlgorithmException {
+        byte[] hash = MessageDigest.getInstance(HASH_ALGORITHM).digest(file.getCanonicalPath().getBytes("UTF-8"));
+        StringBuilder name = new StringBuilder();
+        for (byte b : hash) {
+            name.append(String.format("%02x", b));
+        }
+        return new File(directory, name + SUFFIX);
+    }
+
+    /**
+     * Checksum and hash every chunk past the built ones, publishing BATCH_CHUNKS entries at a time
+     * so an interrupted build resumes where it stopped. Gives up once the file changes or the index
+     * is closed, every batch checks for that while holding the lock close() takes so nothing is
+     * written into the index file after close() returns.
+     */
+    private void build() {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+            byte[] buffer = new byte[chunkSize];
+            byte[] entries = new byte[BATCH_CHUNKS * ENTRY_SIZE];
+            input.seek((long) builtChunks * chunkSize);
+            for (int first = builtChunks; first < chunkCount; first += BATCH_CHUNKS) {
+                int count = Math.min(BATCH_CHUNKS, chunkCount - first);
+                for (int chunk = first; chunk < first + count; chunk++) {
+                    int length = (int) Math.min(chunkSize, fileSize - (long) chunk * chunkSize);
+                    input.readFully(buffer, 0, length);
+                    short checksum = 0;
+                    for (int i = 0; i < length; i++) {
+                        checksum += buffer[i];
+                    }
+                    digest.update(buffer, 0, length);
+                    int offset = (chunk - first) * ENTRY_SIZE;
+                    entries[offset] = (byte) (checksum >> 8);
+                    entries[offset + 1] = (byte) checksum;
+                    digest.digest(entries, offset + CHECKSUM_SIZE, HASH_SIZE);
+                }
+                synchronized (this) {
+                    if (closed || !matches(file)) return;
+                    map.position(HEADER_SIZE + first * ENTRY_SIZE);
+                    map.put(entries, 0, count * ENTRY_SIZE);
+                    map.putInt(BUILT_OFFSET, first + count);
+                    builtChunks = first + count;
+                }
+            }
+            map.force();
+            System.out.println(String.format("Chunk index of %s built", file));
+        } catch (IOException | NoSuchAlgorithmException | DigestException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stop using the index, no entry is served or written by its builder after this returns.
+     * Must be called before the index file is opened again for a changed file.
+     */
+    public synchronized void close() {
+        closed = true;
+        builtChunks = 0;
+    }
+
+    /**
+     * @param file the served file
+     * @return whether the index still describes the file in its current state
+     */
+    public boolean matches(File file) {
+        return fileSize == file.length() && mtime == file.lastModified();
+    }
+
+    /**
+     * @param chunk index of the chunk
+     * @return whether the entry of the chunk has been built
+     */
+    public boolean has(int chunk) {
+        return chunk < builtChunks;
+    }
+
+    /**
+     * @param chunk index of a built chunk
+     * @return the checksum of the chunk
+     */
+    public short checksum(int chunk) {
+        return map.getShort(HEADER_SIZE + chunk * ENTRY_SIZE);
+    }
+
+    /**
+     * @param chunk index of a built chunk
+     * @return the strong hash of the chunk
+     */
+    public byte[] hash(int chunk) {
+        byte[] hash = new byte[HASH_SIZE];
+        for (int i = 0; i < HASH_SIZE; i++) {
+            hash[i] = map.get(HEADER_SIZE + chunk * ENTRY_SIZE + CHECKSUM_SIZE + i);
+        }
+        return hash;
+    }
+}
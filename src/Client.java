@@ -29,13 +29,22 @@ public class Client {
      * CHECKSUM_SIZE: total size in bytes of the checksum of our data
      * SEQUENCE_SIZE: total size in bytes of the sequence number of a packet
      * CHECKSUM_OFFSET: offset of the checksum from the start of the data array
+     * RECEIVE_TIMEOUT: time in milliseconds to wait for a packet before NAKing missing packets
+     * MAX_TIMEOUTS: number of consecutive receive timeouts before giving up on the server, long enough
+     *               to outlast the server's LINGER_TIMEOUT for a silent client sharing the transmission
+     * ACK_DELAY: longest time in milliseconds an in-order packet waits to be acknowledged
+     * DUP_ACKS: number of immediate ACKs sent for the same gap
      */
     private static final int PACKET_SIZE = 512;
     private static final int CHECKSUM_SIZE = 2;
-    private static final int SEQUENCE_SIZE = 2;
-    private static final int DATA_OFFSET = 4;
+    private static final int SEQUENCE_SIZE = 4;
+    private static final int DATA_OFFSET = 6;
     private static final int CHECKSUM_OFFSET = 0;
     private static final int SEQUENCE_OFFSET = 2;
+    private static final int RECEIVE_TIMEOUT = 200;
+    private static final int MAX_TIMEOUTS = 30;
+    private static final int ACK_DELAY = 20;
+    private static final int DUP_ACKS = 3;
     private static int data_size = PACKET_SIZE - CHECKSUM_SIZE - SEQUENCE_SIZE;
 
     private DatagramSocket clientSocket;
@@ -43,7 +52,9 @@ public class Client {
     private byte[] sendData, receiveData;
     private DatagramPacket sendPacket, receivePacket;
     private Gremlin gremlin;
-    private int checksumErrors, packetsReceived;
+    private int checksumErrors, packetsReceived, acksSent, naksSent;
+    private int ackEvery, startSequence, contiguous, highest, unacked, dupAcks, lastAck;
+    private long ackDeadline, lastNakSweep;
     private byte[] reassembledData;
     private String requestFile;
     private String outFile;
@@ -59,9 +70,10 @@ public class Client {
      * @param gremlin_del_t The time in milliseconds a gremlin delays transmission
      * @param requestFile   The file to request from the server
      * @param outFile       The file to write reassembled data
+     * @param ackEvery      The number of in-order packets acknowledged by a single ACK, 1 disables coalescing
      */
     public Client(int port, String host, double gremlin_cor, double gremlin_dro, double gremlin_del,
-                  int gremlin_del_t, String requestFile, String outFile) {
+                  int gremlin_del_t, String requestFile, String outFile, int ackEvery) {
         try {
             clientSocket = new DatagramSocket();
             serverAddress = new InetSocketAddress(InetAddress.getByName(host), port);
@@ -72,6 +84,7 @@ public class Client {
             packetsReceived = 0;
             this.requestFile = requestFile;
             this.outFile = outFile;
+            this.ackEvery = Math.max(1, ackEvery);
         } catch (UnknownHostException e) {
             e.printStackTrace();
         } catch (SocketException e) {
@@ -87,20 +100,52 @@ public class Client {
         sendGetRequest();
         int fileLength = receiveGetResponse();
         reassembledData = new byte[fileLength];
+        int packetCount = (int) Math.max(1, ((long) fileLength + data_size - 1) / data_size);
+        BitSet received = new BitSet(packetCount);
+        int timeouts = 0;
         receiveData = new byte[PACKET_SIZE];
         receivePacket = new DatagramPacket(receiveData, receiveData.length);
         try {
-            while (true) {
-                clientSocket.receive(receivePacket);
-                if (receivePacket.getData()[0] == (byte) '\u0000')
-                    break;
+            while (contiguous < packetCount) {
+                long ackWait = ackDeadline - new Date().getTime();
+                if (ackDeadline > 0 && ackWait <= 0) {
+                    sendAck();
+                }
+                try {
+                    clientSocket.setSoTimeout(ackDeadline > 0 ? (int) Math.max(1, ackWait) : RECEIVE_TIMEOUT);
+                    clientSocket.receive(receivePacket);
+                } catch (SocketTimeoutException e) {
+                    if (ackDeadline > 0) {
+                        sendAck();
+                        continue;
+                    }
+                    if (++timeouts > MAX_TIMEOUTS) {
+                        System.out.println("Server stopped responding - " + (packetCount - received.cardinality())
+                                + " packets missing, not writing " + outFile);
+                        System.exit(400);
+                    }
+                    sendAck();
+                    sendNaks(received, packetCount);
+                    continue;
+                }
+                timeouts = 0;
+                if (receivePacket.getLength() == 1 && receivePacket.getData()[0] == (byte) '\u0000') {
+                    highest = packetCount;
+                    sendNaks(received, packetCount);
+                    continue;
+                }
                 short checksum = parseShort(receivePacket.getData(), CHECKSUM_OFFSET);
-                short sequence = parseShort(receivePacket.getData(), SEQUENCE_OFFSET);
+                int sequence = parseInt(receivePacket.getData(), SEQUENCE_OFFSET);
                 try {
                     receivePacket = gremlin.touchPacket(receivePacket);
                 } catch (InterruptedException e) {
                     System.err.println("Gremlin interrupted while delaying a packet");
                 }
+                if (receivePacket == null) {
+                    System.out.println("--Packet #" + sequence + " DROPPED");
+                    receivePacket = new DatagramPacket(receiveData, receiveData.length);
+                    continue;
+                }
                 byte[] dataBytes = Arrays.copyOfRange(receivePacket.getData(), DATA_OFFSET, receivePacket.getLength());
                 String stringData = new String(dataBytes);
                 System.out.println("--Received packet #" + sequence + " with checksum: " + checksum + " with datasize: " + receivePacket.getLength() + " data payload:\n" + stringData);
@@ -108,29 +153,158 @@ public class Client {
                 packetsReceived++;
                 if (checksumVerified) {
                     System.out.println("--Packet #" + sequence + " Verified ");
+                    if (sequence > 0 && sequence <= packetCount) {
+                        boolean duplicate = received.get(sequence - 1);
+                        if (!duplicate) {
+                            reassemble(dataBytes, sequence, dataBytes.length);
+                            received.set(sequence - 1);
+                        }
+                        acknowledge(received, packetCount, sequence - 1, duplicate);
+                    }
                 } else {
                     System.out.println("--Packet #" + sequence + " CHECKSUM ERROR");
                     checksumErrors++;
+                    sendNak(String.valueOf(sequence - 1));
                 }
-                reassemble(dataBytes, sequence, dataBytes.length);
                 receivePacket = new DatagramPacket(receiveData, receiveData.length);
             }
             System.out.println("Reassembled data: " + new String(reassembledData));
             try {
-                PrintWriter out = new PrintWriter(outFile);
-                out.print(new String(reassembledData));
-                out.flush();
+                FileOutputStream out = new FileOutputStream(outFile);
+                out.write(reassembledData);
+                out.close();
             } catch (IOException e) {
                 e.printStackTrace();
                 System.exit(400);
             }
             System.out.println((100 * (double) checksumErrors / (double) packetsReceived) + "% checksum error rate");
+            System.out.println("Sent " + acksSent + " ACKs and " + naksSent + " NAKs for " + packetsReceived + " packets received");
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(400);
+        }
+    }
+
+    /**
+     * Decide whether a verified packet is acknowledged now or coalesced with the next ones.
+     * In-order packets are acknowledged every ackEvery packets or after ACK_DELAY, whichever
+     * comes first. Packets filling a gap are acknowledged immediately, and so are duplicates and
+     * packets past a gap until DUP_ACKS ACKs for the same gap have gone out. Only ACKs repeating
+     * the last value sent count, the first ACK after a gap usually still carries coalesced progress
+     * and is no duplicate to the server. Further ones carry no news for the server and are coalesced
+     * like in-order packets.
+     *
+     * @param received    the packets received so far, including this one
+     * @param packetCount the total number of packets in the file
+     * @param index       the index of the packet (sequence - 1)
+     * @param duplicate   whether the packet had already been received
+     */
+    private void acknowledge(BitSet received, int packetCount, int index, boolean duplicate) {
+        int position = (index - startSequence + packetCount) % packetCount;
+        if (!duplicate) {
+            highest = Math.max(highest, position + 1);
+        }
+        if (duplicate || position != contiguous) {
+            if (dupAcks < DUP_ACKS) {
+                if (contiguous == lastAck) {
+                    dupAcks++;
+                }
+                sendAck();
+            } else if (++unacked >= ackEvery) {
+                sendAck();
+            } else if (ackDeadline == 0) {
+                ackDeadline = new Date().getTime() + ACK_DELAY;
+            }
+            return;
+        }
+        dupAcks = 0;
+        int before = contiguous;
+        while (contiguous < packetCount && received.get((startSequence + contiguous) % packetCount)) {
+            contiguous++;
+        }
+        if (contiguous - before > 1 || contiguous == packetCount || ++unacked >= ackEvery) {
+            sendAck();
+        } else if (ackDeadline == 0) {
+            ackDeadline = new Date().getTime() + ACK_DELAY;
+        }
+    }
+
+    /**
+     * Send a cumulative ACK for all packets received contiguously since the start sequence
+     */
+    private void sendAck() {
+        byte[] ackBytes = ("ACK " + contiguous).getBytes();
+        try {
+            System.out.println("--Sending ACK " + contiguous);
+            clientSocket.send(new DatagramPacket(ackBytes, ackBytes.length, serverAddress));
+            acksSent++;
+            lastAck = contiguous;
+            unacked = 0;
+            ackDeadline = 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(400);
+        }
+    }
+
+    /**
+     * NAK the gaps below the highest packet received, packets past it may still be on their way.
+     * Gaps are batched into as few NAKs as fit a packet and swept at most once per RECEIVE_TIMEOUT
+     * so packets that are already being repaired are not asked for again right away.
+     *
+     * @param received    the packets received so far, indexed by sequence - 1
+     * @param packetCount the total number of packets in the file
+     */
+    private void sendNaks(BitSet received, int packetCount) {
+        long now = new Date().getTime();
+        if (now - lastNakSweep < RECEIVE_TIMEOUT) return;
+        lastNakSweep = now;
+        StringBuilder indexes = new StringBuilder();
+        for (int position = contiguous; position < highest; position++) {
+            int index = (startSequence + position) % packetCount;
+            if (received.get(index)) continue;
+            if (indexes.length() + 8 > PACKET_SIZE - 4) {
+                sendNak(indexes.toString());
+                indexes.setLength(0);
+            }
+            indexes.append(indexes.length() > 0 ? " " : "").append(index);
+        }
+        if (indexes.length() > 0) {
+            sendNak(indexes.toString());
+        }
+    }
+
+    /**
+     * Ask the server to repair packets
+     *
+     * @param indexes space separated indexes of the missing or corrupted packets (sequence - 1)
+     */
+    private void sendNak(String indexes) {
+        byte[] nakBytes = ("NAK " + indexes).getBytes();
+        try {
+            System.out.println("--Sending NAK for packets " + indexes);
+            clientSocket.send(new DatagramPacket(nakBytes, nakBytes.length, serverAddress));
+            naksSent++;
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(400);
         }
     }
 
+    /**
+     * @return the number of ACK datagrams sent to the server
+     */
+    public int getAcksSent() {
+        return acksSent;
+    }
+
+    /**
+     * @return the number of NAK datagrams sent to the server
+     */
+    public int getNaksSent() {
+        return naksSent;
+    }
+
     /**
      * Send the get request of a file to the server.
      */
@@ -159,9 +333,23 @@ public class Client {
             clientSocket.receive(receivePacket);
             String response = new String(receivePacket.getData());
             System.out.println("--Received HTTP response from Server: \n" + response);
+            String status = response.split("\r\n")[0];
+            if (!status.startsWith("HTTP/1.0 200")) {
+                System.out.println("Server refused request - " + status);
+                System.exit(400);
+            }
+            for (String line : response.split("\r\n")) {
+                if (line.startsWith("Start-Sequence:")) {
+                    startSequence = Integer.parseInt(line.substring("Start-Sequence:".length()).trim());
+                }
+            }
             String[] split = response.split(" ");
-            int fileSize = Integer.parseInt(split[split.length - 1].trim());
-            return fileSize;
+            long fileSize = Long.parseLong(split[split.length - 1].trim());
+            if (fileSize > Integer.MAX_VALUE - 8) {
+                System.out.println("File of " + fileSize + " bytes is too large to reassemble in memory");
+                System.exit(400);
+            }
+            return (int) fileSize;
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(400);
@@ -176,7 +364,7 @@ public class Client {
      * @param sequence   the sequence number of the packet - used to calculate final offset
      * @param dataLength the length of the data in the packet
      */
-    private void reassemble(byte[] data, short sequence, int dataLength) {
+    private void reassemble(byte[] data, int sequence, int dataLength) {
         sequence--;
         System.out.println("Attempting to reassemble: " + Arrays.toString(data));
         System.out.println("Attempting to reassemble at: " + (sequence * (PACKET_SIZE - DATA_OFFSET)) + " to " + (sequence * (PACKET_SIZE - DATA_OFFSET) + dataLength));
@@ -197,6 +385,17 @@ public class Client {
         return (short) (((arr[offset] & 0xFF) << 8) | (arr[offset + 1] & 0xFF));
     }
 
+    /**
+     * Parse an int from four adjacent indices of a byte array
+     *
+     * @param arr    byte array where we will parse an int from four adjacent indices
+     * @param offset int representing the offset of the starting index to parse the int
+     * @return the resultant int of parsing
+     */
+    private int parseInt(byte[] arr, int offset) {
+        return ((parseShort(arr, offset) & 0xFFFF) << 16) | (parseShort(arr, offset + 2) & 0xFFFF);
+    }
+
     /**
      * Calculate a checksum from a given byte array and return if it matches
      * the parameter checksum
@@ -22,6 +22,8 @@ public class Main {
     private static final int DEFAULT_GREMLIN_DEL_T = 0;
     private static final String DEFAULT_REQUEST_FILE = "TestFile.html";
     private static final String DEFAULT_OUT_FILE = "reassembled.html";
+    private static final int DEFAULT_ACK_EVERY = 8;
+    private static final String DEFAULT_INDEX_DIRECTORY = "chunk-index";
 
     /**
      * Parse args and initialize a client or server based on command line arguments
@@ -57,6 +59,7 @@ public class Main {
         int gremlin_del_t = DEFAULT_GREMLIN_DEL_T;
         String requestFile = DEFAULT_REQUEST_FILE;
         String outFile = DEFAULT_OUT_FILE;
+        int ackEvery = DEFAULT_ACK_EVERY;
         if (params.containsKey("port")) {
             port = Integer.parseInt(params.get("port").get(0));
         }
@@ -81,10 +84,13 @@ public class Main {
         if (params.containsKey("ofile")) {
             outFile = params.get("ofile").get(0);
         }
+        if (params.containsKey("ack_every")) {
+            ackEvery = Integer.parseInt(params.get("ack_every").get(0));
+        }
 
-        System.out.println(String.format("Program running in CLIENT mode with port: %s\nhost: %s\ngremlin corruption chance: %s\ngremlin drop chance: %s\ngremlin delay chance: %s\ngremlin delay time: %s",
-                port, host, gremlin_cor, gremlin_dro, gremlin_del, gremlin_del_t));
-        return new Client(port, host, gremlin_cor, gremlin_dro, gremlin_del, gremlin_del_t, requestFile, outFile);
+        System.out.println(String.format("Program running in CLIENT mode with port: %s\nhost: %s\ngremlin corruption chance: %s\ngremlin drop chance: %s\ngremlin delay chance: %s\ngremlin delay time: %s\nack every: %s",
+                port, host, gremlin_cor, gremlin_dro, gremlin_del, gremlin_del_t, ackEvery));
+        return new Client(port, host, gremlin_cor, gremlin_dro, gremlin_del, gremlin_del_t, requestFile, outFile, ackEvery);
     }
 
     /**
@@ -96,14 +102,19 @@ public class Main {
     public static Server initServer(Map<String, List<String>> params) {
         int port = DEFAULT_PORT;
         String host = DEFAULT_HOST;
+        String indexDirectory = DEFAULT_INDEX_DIRECTORY;
         if (params.containsKey("port")) {
             port = Integer.parseInt(params.get("port").get(0));
         }
         if (params.containsKey("host")) {
             host = params.get("host").get(0);
         }
-        System.out.println(String.format("Program running in SERVER mode with port: %s and host: %s", port, host));
-        return new Server(port, host);
+        if (params.containsKey("index_dir")) {
+            indexDirectory = params.get("index_dir").get(0);
+        }
+        System.out.println(String.format("Program running in SERVER mode with port: %s and host: %s and index directory: %s",
+                port, host, indexDirectory));
+        return new Server(port, host, indexDirectory);
     }
 
     /**
@@ -1,5 +1,7 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -17,22 +19,32 @@ public class Server {
      * | CHECKSUM | SEQUENCE # | DATA PAYLOAD |
      * |__________|____________|______________|
      * PACKET_SIZE
-     */
-
-    /**
-     * @TODO Process incoming ACK or NAK packet from within GoBackNThread
-     * @TODO Resend all packets based on last NAK
+     *
+     * The sequence number is the chunk index of the data plus one, so the client can
+     * place a chunk no matter where in the schedule it joined. It is 4 bytes wide so
+     * files far larger than 65535 chunks can be served.
+     *
+     * Clients acknowledge with "ACK n", n being how many packets they hold contiguously
+     * counting from the Start-Sequence of their HTTP response. ACKs are cumulative and may
+     * cover many packets at once, a repeated ACK means the packet after n went missing.
+     * "NAK i j k" asks for the packets with chunk indexes i, j and k to be repaired.
      */
     private static final int PACKET_SIZE = 512;
     private static final int CHECKSUM_SIZE = 2;
-    private static final int SEQUENCE_SIZE = 2;
-    private static final int DATA_OFFSET = 4;
+    private static final int SEQUENCE_SIZE = 4;
+    private static final int DATA_OFFSET = 6;
     private static final int DATA_SIZE = PACKET_SIZE - CHECKSUM_SIZE - SEQUENCE_SIZE;
     private static final int CHECKSUM_OFFSET = 0;
     private static final int SEQUENCE_OFFSET = 2;
-    private static final int SEQUENCE_MODULO = 64;
-    private static final int WINDOW_SIZE = 32;
-    private static final int PACKET_TIMEOUT = 20; //ms
+    private static final int MAX_SEQUENCE = 1 << 30; //keeps schedule arithmetic on chunk indexes within an int
+    private static final int SEGMENT_CHUNKS = Integer.MAX_VALUE / DATA_SIZE; //chunks per mapping of a file
+    private static final int LINGER_TIMEOUT = 5000; //ms a finished member waits for NAKs
+    private static final int DUP_ACK_THRESHOLD = 3;
+    private static final int WINDOW_SIZE = 64; //packets a member may have unacknowledged
+    private static final int REPAIR_BURST = 4; //repairs sent to a member per schedule step
+    private static final int PACKET_TIMEOUT = 50; //ms without ACK progress before resending
+    private static final int STALL_TIMEOUT = 4 * PACKET_TIMEOUT; //ms a full window may hold the schedule
+    private static final int CHANGE_CHECK_INTERVAL = PACKET_TIMEOUT; //ms between checks of a served file
     private static final byte[] TERMINATOR = {'\u0000'};
 
 
@@ -40,10 +52,19 @@ public class Server {
     private int serverPort;
     private byte[] receivedData, sendData;
     private DatagramPacket receivePacket;
-    private ArrayList<GoBackNThread> threads = new ArrayList<>();
+    private final Map<String, TransmissionGroup> groups = new HashMap<>();
+    private final Map<InetSocketAddress, Member> clients = new HashMap<>();
+    private final Map<String, ChunkIndex> indexes = new HashMap<>();
+    private File indexDirectory;
+    private volatile long packetsHandled, acksHandled, naksHandled;
+    private long bytesDelivered;
 
-    public Server(int port, String host) {
+    public Server(int port, String host, String indexDirectory) {
         try {
+            this.indexDirectory = new File(indexDirectory).getCanonicalFile();
+            if (!this.indexDirectory.isDirectory() && !this.indexDirectory.mkdirs()) {
+                System.out.println(String.format("Could not create index directory %s", indexDirectory));
+            }
             receivedData = new byte[PACKET_SIZE];
             sendData = new byte[PACKET_SIZE];
             InetAddress host1 = InetAddress.getByName(host);
@@ -61,18 +82,32 @@ public class Server {
             try {
                 DatagramPacket packet = new DatagramPacket(receivedData, receivedData.length);
                 serverSocket.receive(packet);
-                String data = new String(packet.getData());
+                packetsHandled++;
+                String data = new String(packet.getData(), 0, packet.getLength());
                 InetAddress clientHost = packet.getAddress();
                 int clientPort = packet.getPort();
                 InetSocketAddress clientAddress = new InetSocketAddress(clientHost, clientPort);
-                GoBackNThread thread = createClientThread(clientAddress);
                 System.out.println(String.format("--Received from Client: \n%s", data));
                 String[] split = data.split(" ");
                 if (split.length > 2 && split[0].equals("GET")) {
-                    thread.sendHttpResponse(split[1]);
-                    thread.serve(split[1]);
+                    joinGroup(split[1], clientAddress);
+                } else if (split.length > 1 && split[0].equals("NAK")) {
+                    naksHandled++;
+                    Member member = getMember(clientAddress);
+                    if (member != null) {
+                        for (int i = 1; i < split.length; i++) {
+                            member.group.repair(member, Integer.parseInt(split[i].trim()));
+                        }
+                    }
+                } else if (split.length > 1 && split[0].equals("ACK")) {
+                    acksHandled++;
+                    Member member = getMember(clientAddress);
+                    if (member != null) {
+                        member.group.acknowledge(member, Integer.parseInt(split[1].trim()));
+                    }
                 }
-                thread.start();
+            } catch (NumberFormatException e) {
+                System.out.println("Dropping malformed packet from client");
             } catch (IOException e) {
                 e.printStackTrace();
                 System.exit(500);
@@ -80,18 +115,213 @@ public class Server {
         }
     }
 
-    private GoBackNThread createClientThread(InetSocketAddress address) {
-        for (GoBackNThread thread : threads) {
-            if (thread.clientAddress == address) return thread;
+    /**
+     * Attach a client to the transmission of the requested file. If the file is already
+     * being sent to other clients the new client joins that schedule mid-stream and
+     * picks up the head of the file once the schedule wraps around, otherwise a new
+     * schedule is started. A repeated GET for the same file only repeats the
+     * HTTP response, a GET for another file moves the client to that file's schedule.
+     * A schedule of a file that changed since it started is ended and a new one is started.
+     *
+     * @param filename      the file requested by the client
+     * @param clientAddress the address of the requesting client
+     */
+    private void joinGroup(String filename, InetSocketAddress clientAddress) {
+        File file = new File(filename);
+        if (!file.isFile()) {
+            System.out.println("Client requested non existent file");
+            sendErrorResponse(clientAddress, "404 Not Found");
+            return;
+        }
+        if (isIndexFile(file)) {
+            System.out.println("Client requested a chunk index");
+            sendErrorResponse(clientAddress, "403 Forbidden");
+            return;
+        }
+        if ((file.length() + DATA_SIZE - 1) / DATA_SIZE >= MAX_SEQUENCE) {
+            System.out.println("Requested file is too large to sequence");
+            sendErrorResponse(clientAddress, "413 Request Entity Too Large");
+            return;
+        }
+        synchronized (groups) {
+            Member existing = getMember(clientAddress);
+            if (existing != null) {
+                if (existing.group.filename.equals(filename) && !existing.group.isChanged()) {
+                    sendHttpResponse(existing.group.fileLength, clientAddress, existing.startSequence);
+                    return;
+                }
+                existing.group.leave(existing);
+            }
+            TransmissionGroup group = groups.get(filename);
+            if (group != null && group.isChanged()) {
+                group.end("file changed");
+                group = null;
+            }
+            boolean created = false;
+            if (group == null) {
+                group = new TransmissionGroup(filename);
+                created = true;
+            }
+            Member member = group.join(clientAddress);
+            synchronized (clients) {
+                clients.put(clientAddress, member);
+            }
+            if (created) {
+                groups.put(filename, group);
+                group.start();
+            }
+        }
+    }
+
+    /**
+     * @param file a requested file
+     * @return whether the file is a chunk index or lies in the index directory, neither is served
+     */
+    private boolean isIndexFile(File file) {
+        try {
+            File canonical = file.getCanonicalFile();
+            return canonical.getName().endsWith(ChunkIndex.SUFFIX)
+                    || canonical.getPath().startsWith(indexDirectory.getPath() + File.separator);
+        } catch (IOException e) {
+            return true;
         }
-        GoBackNThread thread = new GoBackNThread(address);
-        threads.add(thread);
-        return thread;
     }
 
-    private static short checksum(byte[] arr, int dataLength) {
+    /**
+     * Find the member a client is being served as
+     *
+     * @param clientAddress the address of the client
+     * @return the member or null if the client is not being served
+     */
+    private Member getMember(InetSocketAddress clientAddress) {
+        synchronized (clients) {
+            return clients.get(clientAddress);
+        }
+    }
+
+    /**
+     * Forget a member that left its group
+     *
+     * @param member the member that left
+     */
+    private void forget(Member member) {
+        synchronized (clients) {
+            if (clients.get(member.address) == member) {
+                clients.remove(member.address);
+            }
+        }
+    }
+
+    /**
+     * Send the HTTP response header to a client joining a transmission
+     *
+     * @param contentLength the size of the file as it is being served
+     * @param clientAddress the address of the client
+     * @param startSequence index of the first packet the client will be sent
+     */
+    private void sendHttpResponse(long contentLength, InetSocketAddress clientAddress, int startSequence) {
+        String httpResponse = "HTTP/1.0 200 Document Follows\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "Start-Sequence: " +
+                startSequence +
+                "\r\n" +
+                "Content-Length: " +
+                contentLength +
+                "\r\n\r\n";
+        byte[] response = httpResponse.getBytes();
+        try {
+            System.out.println("--Sending HTTP response: \n" + httpResponse);
+            serverSocket.send(new DatagramPacket(response, response.length, clientAddress));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(500);
+        }
+    }
+
+    /**
+     * Refuse a request without affecting the other clients being served
+     *
+     * @param clientAddress the address of the client
+     * @param status        the status code and reason phrase of the response
+     */
+    private void sendErrorResponse(InetSocketAddress clientAddress, String status) {
+        String httpResponse = "HTTP/1.0 " + status + "\r\n" +
+                "Content-Length: 0" +
+                "\r\n\r\n";
+        byte[] response = httpResponse.getBytes();
+        try {
+            System.out.println("--Sending HTTP response: \n" + httpResponse);
+            serverSocket.send(new DatagramPacket(response, response.length, clientAddress));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(500);
+        }
+    }
+
+    /**
+     * @return the number of datagrams received from clients so far
+     */
+    long getPacketsHandled() {
+        return packetsHandled;
+    }
+
+    /**
+     * @return the number of ACK datagrams received from clients so far
+     */
+    long getAcksHandled() {
+        return acksHandled;
+    }
+
+    /**
+     * @return the number of NAK datagrams received from clients so far
+     */
+    long getNaksHandled() {
+        return naksHandled;
+    }
+
+    /**
+     * @return the number of file bytes clients have fully acknowledged so far
+     */
+    synchronized long getBytesDelivered() {
+        return bytesDelivered;
+    }
+
+    private synchronized void delivered(long bytes) {
+        bytesDelivered += bytes;
+    }
+
+    /**
+     * Get the chunk index of a file, mapping it the first time the file is served and again
+     * after the file changed, once the builder of the old index has been stopped. Indexes are
+     * kept by canonical path so different paths to the same file share one index file.
+     *
+     * @param filename the served file
+     * @return the index or null if it could not be mapped
+     */
+    private ChunkIndex getIndex(String filename) {
+        File file = new File(filename);
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException e) {
+            return null;
+        }
+        synchronized (indexes) {
+            ChunkIndex index = indexes.get(path);
+            if (index == null || !index.matches(file)) {
+                if (index != null) {
+                    index.close();
+                }
+                index = ChunkIndex.open(file, indexDirectory, DATA_SIZE);
+                indexes.put(path, index);
+            }
+            return index;
+        }
+    }
+
+    private static short checksum(byte[] arr, int offset, int dataLength) {
         short checksum = 0;
-        for (int i = 0; i < dataLength; i++) {
+        for (int i = offset; i < offset + dataLength; i++) {
             checksum += arr[i];
         }
         return checksum;
@@ -108,125 +338,433 @@ public class Server {
     }
 
     /**
-     * Encapsulated interactions with a single client (based on address)
-     * Each thread instance contains a single interaction with a single client.
+     * Converts an int to bytes and writes them into the parameter array
+     * based on the offset value.
+     */
+    private static void intToByte(int value, byte[] arr, int offset) {
+        shortToByte((short) (value >> 16), arr, offset);
+        shortToByte((short) value, arr, offset + 2);
+    }
+
+    /**
+     * Shared transmission of a single file to every client that requested it concurrently.
+     * The file is memory mapped in segments of SEGMENT_CHUNKS chunks and each packet is built straight from the mapping when the schedule
+     * reaches it, then sent once per pass, fanning the same buffer out to all members that still
+     * need it. Checksums come from the file's ChunkIndex once it has been built.
      * An interaction consists of:
-     * - Queueing packets
-     * - Serving packets
-     * - Awaiting ACK or NAK
-     * - Re-serving packets (if applicable)
-     * - Destroying thread
+     * - Mapping the file
+     * - Serving each packet to all members that need it
+     * - Wrapping around for members that joined mid-stream
+     * - Repairing packets a member NAKed or left a gap in its ACKs for
+     * - Holding the schedule while a member has WINDOW_SIZE packets unacknowledged and still makes progress
+     * - Skipping a stalled member, which is then served on its own until the schedule meets it again
+     * - Destroying thread once no members remain, or ending it early if the file changes
      */
-    private class GoBackNThread extends Thread {
-        private ArrayList<Packet> queue = new ArrayList<>();
-        private Date[] timestamp = new Date[WINDOW_SIZE];
-        private Packet[] window = new Packet[WINDOW_SIZE];
-        private boolean hasCompletedTransmission = false;
-        private boolean isRunning = true;
-        private InetSocketAddress clientAddress;
-        private DatagramPacket sendPacket;
+    private class TransmissionGroup extends Thread {
+        private ByteBuffer[] segments;
+        private ChunkIndex index;
+        private Packet schedulePacket = new Packet(this);
+        private Packet repairPacket = new Packet(this);
+        private Packet catchUpPacket = new Packet(this);
+        private final ArrayList<Member> members = new ArrayList<>();
+        private String filename;
+        private long fileLength, mtime;
+        private int packetCount;
+        private int cursor = 0;
+        private volatile boolean isRunning = true;
+        private DatagramPacket terminatorPacket = new DatagramPacket(TERMINATOR, TERMINATOR.length);
+
+        TransmissionGroup(String filename) {
+            File file = new File(filename);
+            this.filename = filename;
+            this.fileLength = file.length();
+            this.mtime = file.lastModified();
+            this.packetCount = (int) Math.max(1, (fileLength + DATA_SIZE - 1) / DATA_SIZE);
+        }
 
-        GoBackNThread(InetSocketAddress clientAddress) {
-            this.clientAddress = clientAddress;
+        /**
+         * Add a client to the schedule, it will be served starting at the current cursor
+         */
+        Member join(InetSocketAddress clientAddress) {
+            Member member;
+            synchronized (members) {
+                sendHttpResponse(fileLength, clientAddress, cursor);
+                member = new Member(this, clientAddress, cursor);
+                members.add(member);
+            }
+            System.out.println(String.format("Client %s:%s joined %s at packet #%s",
+                    clientAddress.getAddress(), clientAddress.getPort(), filename, member.startSequence));
+            return member;
         }
 
-        void enqueue(byte[] data) {
-            int nextSequence = queue.size() > 0 ? (queue.get(queue.size() - 1).sequence + 1) : 0;
-            short sequence = (short) (nextSequence % SEQUENCE_MODULO);
-            queue.add(new Packet(sequence, data));
+        /**
+         * Remove a client from the schedule before it has been served the whole file
+         */
+        void leave(Member member) {
+            synchronized (members) {
+                members.remove(member);
+            }
+            forget(member);
+        }
+
+        /**
+         * Queue a targeted retransmission of a single packet to the member that NAKed it.
+         * A packet already queued for the member is only queued once.
+         */
+        void repair(Member member, int sequence) {
+            if (sequence >= 0 && sequence < packetCount) {
+                synchronized (member) {
+                    member.repairs.set(sequence);
+                    member.lastActivity = System.currentTimeMillis();
+                }
+            }
+        }
+
+        /**
+         * Process a cumulative ACK. A single ACK may cover any number of packets, the member
+         * only counts as done once it has acknowledged every packet. The same ACK arriving
+         * DUP_ACK_THRESHOLD times repairs the packet right after it.
+         */
+        void acknowledge(Member member, int acked) {
+            if (acked < 0 || acked > packetCount) return;
+            synchronized (member) {
+                member.lastActivity = System.currentTimeMillis();
+                if (acked > member.acked) {
+                    member.acked = acked;
+                    member.dupAcks = 0;
+                    member.lastProgress = member.lastActivity;
+                    if (acked == packetCount) {
+                        delivered(fileLength);
+                    }
+                } else if (acked == member.acked && acked < member.sentCount
+                        && ++member.dupAcks == DUP_ACK_THRESHOLD) {
+                    member.repairs.set((member.startSequence + acked) % packetCount);
+                }
+            }
         }
 
         public void run() {
-            System.out.println(String.format("Creating client thread for %s:%s", clientAddress.getAddress(), clientAddress.getPort()));
+            System.out.println(String.format("Creating transmission thread for %s", filename));
+            if (!serve(filename)) return;
+            long lastCheck = System.currentTimeMillis();
             while (isRunning) {
-                if (queue.size() > 0) {
-                    for (Packet packet : queue) {
-                        if (!packet.inTransit) {
-                            send(packet); // DO NOT DEQUEUE PACKET UNTIL ACK RECEIVED
-                            window[packet.sequence] = packet;
+                long now = System.currentTimeMillis();
+                if (now - lastCheck >= CHANGE_CHECK_INTERVAL) {
+                    lastCheck = now;
+                    if (isChanged()) {
+                        end("file changed");
+                        return;
+                    }
+                }
+                try {
+                    step(now);
+                } catch (InternalError e) {
+                    //Faulting on the mapping means the file was truncated under it
+                    end("file changed");
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Send the next packet of the schedule and any queued repairs, expiring members if idle
+         */
+        private void step(long now) {
+            boolean sent = false;
+            Packet packet = null;
+            int sequence = -1;
+            List<Member> snapshot;
+            synchronized (members) {
+                snapshot = new ArrayList<>(members);
+                boolean held = false;
+                for (Member member : snapshot) {
+                    held |= isNext(member) && isWindowFull(member) && now - member.lastProgress <= STALL_TIMEOUT;
+                    resendOnTimeout(member, now);
+                }
+                if (!held) {
+                    sequence = nextSequence(snapshot);
+                }
+            }
+            if (sequence >= 0) {
+                packet = schedulePacket.load(sequence);
+            }
+            for (Member member : snapshot) {
+                int repair;
+                for (int i = 0; i < REPAIR_BURST && (repair = member.nextRepair()) >= 0; i++) {
+                    send(repairPacket.load(repair), member.address);
+                    sent = true;
+                }
+                if (member.sentCount < packetCount && !isWindowFull(member)) {
+                    if (isNext(member)) {
+                        if (packet == null) continue;
+                        send(packet, member.address);
+                    } else {
+                        send(catchUpPacket.load((member.startSequence + member.sentCount) % packetCount), member.address);
+                    }
+                    sent = true;
+                    member.sentCount++;
+                    if (member.sentCount == packetCount) {
+                        send(terminatorPacket, member.address);
+                        member.lastActivity = now;
+                    }
+                }
+            }
+            if (sequence >= 0) {
+                synchronized (members) {
+                    cursor = (cursor + 1) % packetCount;
+                }
+            }
+            if (!sent) {
+                expireMembers();
+            }
+        }
+
+        /**
+         * Pick the packet the schedule sends next. That is the one at the cursor if any member can be
+         * sent it, otherwise the cursor jumps ahead to the closest packet a member with room in its
+         * window needs, so a member skipped while stalled rejoins the shared schedule when it is alone.
+         *
+         * @return the index of the packet or -1 if no member can be sent a packet
+         */
+        private int nextSequence(List<Member> snapshot) {
+            int closest = -1;
+            for (Member member : snapshot) {
+                if (member.sentCount < packetCount && !isWindowFull(member)) {
+                    int next = (member.startSequence + member.sentCount) % packetCount;
+                    int distance = (next - cursor + packetCount) % packetCount;
+                    if (closest < 0 || distance < closest) {
+                        closest = distance;
+                    }
+                }
+            }
+            if (closest < 0) return -1;
+            cursor = (cursor + closest) % packetCount;
+            return cursor;
+        }
+
+        /**
+         * @return whether the packet at the cursor is the next one the member has to be sent. A member
+         * skipped while stalled is behind the cursor and is sent its next packet on its own each step.
+         */
+        private boolean isNext(Member member) {
+            return member.sentCount < packetCount && (member.startSequence + member.sentCount) % packetCount == cursor;
+        }
+
+        private boolean isWindowFull(Member member) {
+            return member.sentCount - member.acked >= WINDOW_SIZE;
+        }
+
+        /**
+         * Repair the first unacknowledged packet of a member that has packets outstanding but
+         * made no ACK progress for PACKET_TIMEOUT, covering a lost window tail or terminator.
+         */
+        private void resendOnTimeout(Member member, long now) {
+            synchronized (member) {
+                boolean outstanding = member.sentCount - member.acked >= WINDOW_SIZE
+                        || (member.sentCount == packetCount && member.acked < packetCount);
+                if (outstanding && now - Math.max(member.lastProgress, member.lastResend) > PACKET_TIMEOUT) {
+                    member.repairs.set((member.startSequence + member.acked) % packetCount);
+                    member.lastResend = now;
+                }
+            }
+        }
+
+        /**
+         * Drop members that acknowledged the whole file, or sent nothing for LINGER_TIMEOUT
+         * because they finished or went away, destroying the thread once no members remain.
+         */
+        private void expireMembers() {
+            long now = System.currentTimeMillis();
+            List<Member> expired = new ArrayList<>();
+            synchronized (groups) {
+                synchronized (members) {
+                    Iterator<Member> iterator = members.iterator();
+                    while (iterator.hasNext()) {
+                        Member member = iterator.next();
+                        if (member.acked == packetCount
+                                || (member.hasNoRepairs() && now - member.lastActivity > LINGER_TIMEOUT)) {
+                            iterator.remove();
+                            expired.add(member);
                         }
                     }
+                    if (members.isEmpty()) {
+                        if (groups.get(filename) == this) {
+                            groups.remove(filename);
+                        }
+                        isRunning = false;
+                        System.out.println(String.format("Completed transmission of %s, handled %s client packets for %s bytes delivered",
+                                filename, getPacketsHandled(), getBytesDelivered()));
+                    }
+                }
+                for (Member member : expired) {
+                    forget(member);
                 }
-                //Once completed sending and receiving all ACKs and NAKs
-                if (hasCompletedTransmission) {
-                    threads.remove(this);
+            }
+            if (isRunning) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
                     isRunning = false;
                 }
             }
         }
 
-        private void send(Packet packet) {
+        private void send(Packet packet, InetSocketAddress clientAddress) {
+            send(packet.sendPacket, clientAddress);
+        }
+
+        private void send(DatagramPacket datagram, InetSocketAddress clientAddress) {
             try {
-                packet.sent = new Date().getTime();
-                sendPacket = new DatagramPacket(packet.compiled, packet.compiled.length, clientAddress);
-                System.out.println("--Sending HTTP response: \n" + new String(packet.buffer));
-                serverSocket.send(sendPacket);
-                packet.inTransit = true;
+                datagram.setSocketAddress(clientAddress);
+                serverSocket.send(datagram);
             } catch (IOException e) {
                 e.printStackTrace();
                 System.exit(500);
             }
         }
 
-        private boolean sendHttpResponse(String filename) {
-            File file = new File(filename);
-            if (file.exists()) {
-                String httpResponse = "HTTP/1.0 200 Document Follows\r\n" +
-                        "Content-Type: text/plain\r\n" +
-                        "Content-Length: " +
-                        file.length() +
-                        "\r\n\r\n";
-                byte[] response = httpResponse.getBytes();
-                enqueue(response);
-            } else {
-                System.out.println("Client requested non existent file - exiting");
-                System.exit(404);
+        /**
+         * Map the file, ending the transmission if it can not be mapped as it was when the group started
+         *
+         * @return whether the file is ready to be served
+         */
+        private boolean serve(String filename) {
+            index = getIndex(filename);
+            try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+                //Map the file, packets are read from the mapping as they are sent
+                long segmentSize = (long) SEGMENT_CHUNKS * DATA_SIZE;
+                segments = new ByteBuffer[(int) Math.max(1, (fileLength + segmentSize - 1) / segmentSize)];
+                for (int i = 0; i < segments.length; i++) {
+                    long position = i * segmentSize;
+                    segments[i] = file.getChannel().map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(segmentSize, fileLength - position));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                end("file could not be mapped");
+                return false;
+            }
+            if (isChanged()) {
+                end("file changed");
+                return false;
             }
             return true;
         }
 
-        private void serve(String filename) {
+        /**
+         * @return whether the size or modification time of the file differs from when the group started
+         */
+        boolean isChanged() {
             File file = new File(filename);
-            try {
-                //Set up file input and read file
-                FileInputStream fileInput = new FileInputStream(file);
-                int bytesRead;
-                byte[] buffer = new byte[DATA_SIZE];
+            return file.length() != fileLength || file.lastModified() != mtime;
+        }
 
-                sendData = new byte[PACKET_SIZE];
-                while ((fileInput.read(buffer)) != -1) {
-                    enqueue(buffer);
+        /**
+         * Stop the transmission and drop every member, so the next request for the file
+         * starts a new group instead of joining this one
+         *
+         * @param reason why the transmission ended
+         */
+        void end(String reason) {
+            List<Member> dropped;
+            synchronized (groups) {
+                synchronized (members) {
+                    dropped = new ArrayList<>(members);
+                    members.clear();
+                    if (groups.get(filename) == this) {
+                        groups.remove(filename);
+                    }
+                    isRunning = false;
+                }
+                for (Member member : dropped) {
+                    forget(member);
                 }
-                enqueue(TERMINATOR);
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.exit(500);
             }
+            System.out.println(String.format("Ended transmission of %s to %s clients - %s",
+                    filename, dropped.size(), reason));
         }
     }
 
     /**
-     * An instance of a single packet to be sent.
+     * A reusable packet buffer of a TransmissionGroup, loaded with one chunk of the file at a time.
      */
     private class Packet {
-        short sequence;
         short checksum;
-        byte[] compiled;
-        byte[] buffer;
-        long created;
-        long sent;
-        boolean inTransit = false;
-        boolean isCompleted = false;
-
-        Packet(short sequence, byte[] data) {
-            this.created = new Date().getTime();
-            this.checksum = checksum(data, data.length);
-            this.buffer = new byte[PACKET_SIZE];
-            sequence++;
-            shortToByte(checksum, buffer, CHECKSUM_OFFSET);
-            shortToByte(sequence, buffer, SEQUENCE_OFFSET);
-            System.arraycopy(data, 0, buffer, DATA_OFFSET, data.length);
-            this.compiled = data;
+        byte[] compiled = new byte[PACKET_SIZE];
+        DatagramPacket sendPacket = new DatagramPacket(compiled, compiled.length);
+        TransmissionGroup group;
+
+        Packet(TransmissionGroup group) {
+            this.group = group;
+        }
+
+        /**
+         * Fill the packet with a chunk of the mapped file, taking the checksum from the index if built
+         *
+         * @param sequence index of the chunk
+         * @return this packet
+         */
+        Packet load(int sequence) {
+            ByteBuffer segment = group.segments[sequence / SEGMENT_CHUNKS];
+            int offset = sequence % SEGMENT_CHUNKS * DATA_SIZE;
+            int length = Math.min(DATA_SIZE, segment.limit() - offset);
+            segment.position(offset);
+            segment.get(compiled, DATA_OFFSET, length);
+            this.checksum = group.index != null && group.index.has(sequence)
+                    ? group.index.checksum(sequence) : checksum(compiled, DATA_OFFSET, length);
+            shortToByte(checksum, compiled, CHECKSUM_OFFSET);
+            intToByte(sequence + 1, compiled, SEQUENCE_OFFSET);
+            sendPacket.setLength(DATA_OFFSET + length);
+            return this;
+        }
+    }
+
+    /**
+     * A single client attached to a TransmissionGroup. This is all the state the
+     * server keeps per client, the packets themselves are shared.
+     */
+    private class Member {
+        TransmissionGroup group;
+        InetSocketAddress address;
+        int startSequence;
+        int sentCount = 0;
+        volatile int acked = 0;
+        int dupAcks = 0;
+        volatile long lastActivity;
+        long lastProgress, lastResend;
+        BitSet repairs = new BitSet();
+        int repairCursor = 0;
+
+        Member(TransmissionGroup group, InetSocketAddress address, int startSequence) {
+            this.group = group;
+            this.address = address;
+            this.startSequence = startSequence;
+            this.lastActivity = System.currentTimeMillis();
+            this.lastProgress = lastActivity;
+        }
+
+        /**
+         * @return the next queued repair in round robin order, skipping packets acknowledged
+         * since they were NAKed, or -1 if there is none
+         */
+        synchronized int nextRepair() {
+            int packetCount = group.packetCount;
+            while (!repairs.isEmpty()) {
+                int repair = repairs.nextSetBit(repairCursor);
+                if (repair < 0) {
+                    repair = repairs.nextSetBit(0);
+                }
+                repairs.clear(repair);
+                repairCursor = repair + 1;
+                if ((repair - startSequence + packetCount) % packetCount >= acked) {
+                    return repair;
+                }
+            }
+            return -1;
+        }
+
+        synchronized boolean hasNoRepairs() {
+            return repairs.isEmpty();
         }
     }
 }